@@ -112,7 +112,7 @@ public class Builtin {
         if (f == DEFINE) {
             if (args.size() != 2)
                 throw new RuntimeException("expected 2 args to define");
-            env.put(EAtom.cast(args.get(0)), vm.eval(args.get(1), env));
+            vm.define(EAtom.cast(args.get(0)), vm.eval(args.get(1), env), env);
             return null;
         }
 
@@ -0,0 +1,361 @@
+import java.util.*;
+
+// rewrites the body of a define'd lambda before it is ever run:
+// calls to pure builtins with literal args are folded, ifs with a
+// constant test lose their dead branch and small non-recursive global
+// functions are inlined at their call sites.
+//
+// every rewrite that depends on what a global name is bound to gets
+// recorded against that name; redefining the name puts the original
+// body back.
+public class Optimizer {
+    private static final int INLINE_MAX_SIZE = 16;
+    private static final int INLINE_MAX_DEPTH = 4;
+    private static final Set<ELambda> PURE = new HashSet<ELambda>(Arrays.asList(new ELambda[] {
+        Builtin.PLUS, Builtin.MINUS, Builtin.MULTIPLY, Builtin.DIVIDE, Builtin.MOD,
+        Builtin.LESS, Builtin.GREATER, Builtin.LEQ, Builtin.GEQ, Builtin.EQ,
+        Builtin.EQV, Builtin.EQUAL }));
+
+    private VM vm;
+    private VM.Environment global;
+    private Set<EAtom> redefined;
+    private Map<ELambda, List<Expr>> sources;
+    private Map<ELambda, Set<EAtom>> deps;
+    private Map<EAtom, List<ELambda>> dependents;
+
+    // names the lambda being optimized defines locally; they may
+    // still be unbound when a call that mentions them runs
+    private Set<EAtom> locals;
+
+    public Optimizer(VM vm, VM.Environment global) {
+        this.vm = vm;
+        this.global = global;
+        redefined = new HashSet<EAtom>();
+        sources = new HashMap<ELambda, List<Expr>>();
+        deps = new HashMap<ELambda, Set<EAtom>>();
+        dependents = new HashMap<EAtom, List<ELambda>>();
+    }
+
+    // called by define before the new binding is made
+    public void define(EAtom name, Expr val, VM.Environment env) {
+        // an optimized lambda only sees the global environment and its
+        // own locals, so a define anywhere else can't affect it
+        if (env != global)
+            return;
+        invalidate(name);
+        Expr old = global.get(name);
+        if (old != null) {
+            redefined.add(name);
+            if (old instanceof ELambda)
+                restore((ELambda) old);
+        }
+
+        if (!(val instanceof ELambda) || val instanceof ELambdaBuiltin)
+            return;
+        ELambda f = (ELambda) val;
+        if (f.env != global || sources.containsKey(f))
+            return;
+        optimize(f, name);
+    }
+
+    // restore the original body of everything that relied on name
+    private void invalidate(EAtom name) {
+        List<ELambda> l = dependents.remove(name);
+        if (l == null)
+            return;
+        for (ELambda f : l)
+            restore(f);
+    }
+
+    // put back the original body of f and stop tracking it
+    private void restore(ELambda f) {
+        List<Expr> source = sources.remove(f);
+        if (source == null)
+            return;
+        f.body = source;
+        for (EAtom a : deps.remove(f)) {
+            List<ELambda> l = dependents.get(a);
+            if (l == null)
+                continue;
+            l.remove(f);
+            if (l.isEmpty())
+                dependents.remove(a);
+        }
+    }
+
+    private void optimize(ELambda f, EAtom name) {
+        // names bound outside the global environment map to null;
+        // the function's own name is known to be bound to f
+        Map<EAtom, Expr> scope = new HashMap<EAtom, Expr>();
+        scope.put(name, f);
+        for (EAtom a : f.args)
+            scope.put(a, null);
+
+        // a define found late may shadow a head resolved earlier,
+        // so keep going until no new local shows up
+        Set<EAtom> used = new HashSet<EAtom>();
+        locals = new HashSet<EAtom>();
+        boolean known;
+        int n;
+        do {
+            n = locals.size();
+            Map<EAtom, Expr> bound = new HashMap<EAtom, Expr>(scope);
+            for (EAtom a : locals)
+                bound.put(a, null);
+            known = true;
+            for (Expr e : f.body)
+                known &= collectDefines(e, bound, used);
+        } while (locals.size() != n);
+
+        // a call to something unknown could be a define of any name,
+        // including the builtins folding relies on
+        if (!known)
+            return;
+        for (EAtom a : locals)
+            scope.put(a, null);
+
+        List<Expr> body = new ArrayList<Expr>(f.body.size());
+        for (Expr e : f.body)
+            body.add(optimize(e, scope, used, 0));
+
+        // nothing was resolved, so nothing could have changed
+        if (used.isEmpty())
+            return;
+
+        sources.put(f, f.body);
+        deps.put(f, used);
+        for (EAtom a : used) {
+            List<ELambda> l = dependents.get(a);
+            if (l == null) {
+                l = new ArrayList<ELambda>();
+                dependents.put(a, l);
+            }
+            l.add(f);
+        }
+        f.body = body;
+    }
+
+    private Expr optimize(Expr expr, Map<EAtom, Expr> scope, Set<EAtom> used, int depth) {
+        if (!(expr instanceof EList) || expr == EList.NULL)
+            return expr;
+
+        EList list = (EList) expr;
+        Expr head = optimize(list.car, scope, used, depth);
+        List<Expr> args = list.cdr.toList();
+
+        // unless we know what is being called we can't tell whether
+        // the args get evaluated at all
+        Expr e = resolve(head, scope, used);
+        if (!(e instanceof ELambda) || e == Builtin.QUOTE)
+            return build(head, args);
+        ELambda f = (ELambda) e;
+
+        if (f == Builtin.LAMBDA) {
+            if (args.size() < 2 || !(args.get(0) instanceof EList))
+                return build(head, args);
+            Map<EAtom, Expr> inner = new HashMap<EAtom, Expr>(scope);
+            for (Iterator<Expr> i = ((EList) args.get(0)).iterator(); i.hasNext(); ) {
+                Expr a = i.next();
+                if (!(a instanceof EAtom))
+                    return build(head, args);
+                inner.put((EAtom) a, null);
+            }
+            for (int i = 1; i < args.size(); ++i)
+                args.set(i, optimize(args.get(i), inner, used, depth));
+            return build(head, args);
+        }
+
+        if (f == Builtin.DEFINE) {
+            if (args.size() == 2)
+                args.set(1, optimize(args.get(1), scope, used, depth));
+            return build(head, args);
+        }
+
+        for (int i = 0; i < args.size(); ++i)
+            args.set(i, optimize(args.get(i), scope, used, depth));
+
+        if (f == Builtin.IF && args.size() == 3 && args.get(0) instanceof EBool)
+            return ((EBool) args.get(0)).val ? args.get(1) : args.get(2);
+
+        if (PURE.contains(f) && args.size() >= f.args.size() && constant(args)) {
+            try {
+                Expr ret = Builtin.call((ELambdaBuiltin) f, new ArrayList<Expr>(args), vm, global);
+                if (ret != null)
+                    return ret;
+            } catch (RuntimeException ex) {
+                // leave it to fail at run time
+            }
+        }
+
+        if (head instanceof EAtom) {
+            Expr inlined = inline((EAtom) head, f, args, scope, used, depth);
+            if (inlined != null)
+                return inlined;
+        }
+
+        return build(head, args);
+    }
+
+    // returns what head is known to be bound to, or null if it isn't known
+    private Expr resolve(Expr head, Map<EAtom, Expr> scope, Set<EAtom> used) {
+        if (head instanceof ELambda)
+            return head;
+        if (!(head instanceof EAtom))
+            return null;
+        EAtom atom = (EAtom) head;
+        if (scope.containsKey(atom)) {
+            if (scope.get(atom) != null)
+                used.add(atom);
+            return scope.get(atom);
+        }
+        // a global that is unbound now may be defined later
+        used.add(atom);
+        return global.get(atom);
+    }
+
+    // returns null if the call can't be inlined
+    private Expr inline(EAtom name, ELambda f, List<Expr> args, Map<EAtom, Expr> scope, Set<EAtom> used, int depth) {
+        if (depth >= INLINE_MAX_DEPTH || f instanceof ELambdaBuiltin || f.env != global)
+            return null;
+        if (redefined.contains(name) || scope.containsKey(name))
+            return null;
+        if (f.body.size() != 1 || f.args.size() != args.size())
+            return null;
+
+        // the args may end up evaluated any number of times, so they
+        // have to be free of side effects and errors
+        for (Expr a : args) {
+            if (a instanceof EAtom) {
+                if (locals.contains(a))
+                    return null;
+                if (!scope.containsKey(a) && global.get((EAtom) a) == null)
+                    return null;
+            } else if (!constant(a)) {
+                return null;
+            }
+        }
+
+        Expr body = f.body.get(0);
+        if (!inlinable(body, f, scope, new int[] { 0 }))
+            return null;
+
+        Map<EAtom, Expr> bindings = new HashMap<EAtom, Expr>();
+        for (int i = 0; i < args.size(); ++i)
+            bindings.put(f.args.get(i), args.get(i));
+
+        used.add(name);
+        if (deps.containsKey(f))
+            used.addAll(deps.get(f));
+        return optimize(substitute(body, bindings), scope, used, depth + 1);
+    }
+
+    // true if body is small, calls only known global functions and
+    // doesn't refer to anything that scope would capture
+    private boolean inlinable(Expr body, ELambda f, Map<EAtom, Expr> scope, int[] size) {
+        if (++size[0] > INLINE_MAX_SIZE)
+            return false;
+
+        if (body instanceof EAtom) {
+            EAtom atom = (EAtom) body;
+            if (f.args.contains(atom))
+                return true;
+            return !scope.containsKey(atom) && global.get(atom) != f;
+        }
+
+        if (!(body instanceof EList) || body == EList.NULL)
+            return true;
+
+        EList list = (EList) body;
+        if (!(list.car instanceof EAtom))
+            return false;
+        EAtom head = (EAtom) list.car;
+        if (f.args.contains(head) || scope.containsKey(head))
+            return false;
+        Expr e = global.get(head);
+        if (!(e instanceof ELambda) || e == f || e == Builtin.LAMBDA || e == Builtin.DEFINE)
+            return false;
+        if (e == Builtin.QUOTE)
+            return true;
+
+        for (Iterator<Expr> i = list.cdr.iterator(); i.hasNext(); )
+            if (!inlinable(i.next(), f, scope, size))
+                return false;
+        return true;
+    }
+
+    private Expr substitute(Expr expr, Map<EAtom, Expr> bindings) {
+        if (expr instanceof EAtom)
+            return bindings.containsKey(expr) ? bindings.get(expr) : expr;
+        if (!(expr instanceof EList) || expr == EList.NULL)
+            return expr;
+
+        EList list = (EList) expr;
+        if (list.car instanceof EAtom && global.get((EAtom) list.car) == Builtin.QUOTE)
+            return expr;
+        List<Expr> args = list.cdr.toList();
+        for (int i = 0; i < args.size(); ++i)
+            args.set(i, substitute(args.get(i), bindings));
+        return build(list.car, args);
+    }
+
+    // adds the names of local defines to locals, resolving heads the same
+    // way optimize does with what is bound locally in bound. returns false
+    // if some call couldn't be resolved, since it might be a define too
+    private boolean collectDefines(Expr expr, Map<EAtom, Expr> bound, Set<EAtom> used) {
+        if (!(expr instanceof EList) || expr == EList.NULL)
+            return true;
+
+        EList list = (EList) expr;
+        boolean known = true;
+        Expr f = null;
+        if (list.car instanceof EList)
+            known = collectDefines(list.car, bound, used);
+        else
+            f = resolve(list.car, bound, used);
+        if (!(f instanceof ELambda))
+            known = false;
+
+        if (f == Builtin.QUOTE)
+            return known;
+
+        if (f == Builtin.DEFINE && list.cdr != EList.NULL && list.cdr.car instanceof EAtom) {
+            locals.add((EAtom) list.cdr.car);
+            bound.put((EAtom) list.cdr.car, null);
+        }
+
+        Iterator<Expr> i = list.cdr.iterator();
+        if (f == Builtin.LAMBDA && list.cdr != EList.NULL && list.cdr.car instanceof EList) {
+            Map<EAtom, Expr> inner = new HashMap<EAtom, Expr>(bound);
+            for (Iterator<Expr> j = ((EList) i.next()).iterator(); j.hasNext(); ) {
+                Expr a = j.next();
+                if (a instanceof EAtom)
+                    inner.put((EAtom) a, null);
+            }
+            bound = inner;
+        }
+
+        while (i.hasNext())
+            known &= collectDefines(i.next(), bound, used);
+        return known;
+    }
+
+    private static boolean constant(Expr e) {
+        return e instanceof ENum || e instanceof EBool || e instanceof EString;
+    }
+
+    private static boolean constant(List<Expr> l) {
+        for (Expr e : l)
+            if (!constant(e))
+                return false;
+        return true;
+    }
+
+    private static EList build(Expr head, List<Expr> args) {
+        EList list = new EList(head, EList.NULL), pos = list;
+        for (Expr arg : args) {
+            pos.cdr = new EList(arg, EList.NULL);
+            pos = pos.cdr;
+        }
+        return list;
+    }
+}
@@ -19,9 +19,11 @@ public class VM {
         public String toString() { return map.toString(); }
     }
     private Environment global;
+    private Optimizer optimizer;
 
     public VM() {
         global = new Environment(null);
+        optimizer = new Optimizer(this, global);
 
         // fill in builtins at the global level
         for (ELambdaBuiltin e : Builtin.all())
@@ -58,6 +60,12 @@ public class VM {
     }
     public Expr eval(Expr expr) { return eval(expr, global); }
 
+    public void define(EAtom name, Expr val, Environment env) {
+        // let the optimizer see the old binding before it is replaced
+        optimizer.define(name, val, env);
+        env.put(name, val);
+    }
+
     private Expr call(ELambda f, List<Expr> args, Environment env) {
         // apply partially if there aren't enough arguments
         if (args.size() < f.args.size())
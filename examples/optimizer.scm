@@ -0,0 +1,78 @@
+; exercises the optimizer run on define'd lambdas. every result must be
+; the same as without it. pipe through the repl, one form per line, with
+; and without the optimizer and compare:
+;   java H1N1 < examples/optimizer.scm > after.txt 2>&1
+;   (build the commit before the optimizer and repeat into before.txt)
+;   diff before.txt after.txt
+
+; folding and dead branches: g becomes (+ 9.0 n)
+(define sq (lambda (x) (* x x)))
+(define g (lambda (n) (+ (sq 3) (if (< 1 2) n (car n)))))
+(g 1)
+; 10.0
+
+; quoted data and a param shadowing a builtin are left alone
+(define q (lambda (x) (quote (+ 1 2))))
+(q 0)
+; (+ 1.0 2.0)
+(define p (lambda (+) (+ 1 2)))
+(p -)
+; -1.0
+
+; recursion still works, (- n (+ 1 1)) is folded to (- n 2.0)
+(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n (+ 1 1)))))))
+(fib 15)
+; 610.0
+
+; redefining an inlined function puts the caller's original body back
+(define double (lambda (x) (+ x x)))
+(define d (lambda (n) (double n)))
+(d 4)
+; 8.0
+(define double (lambda (x) (* x 3)))
+(d 4)
+; 12.0
+
+; redefining a folded builtin does the same
+(define plus +)
+(define three (lambda () (+ 1 2)))
+(three)
+; 3.0
+(define + -)
+(three)
+; -1.0
+(define + plus)
+
+; a local define, even through an alias, shadows the global that an
+; inlined function would read
+(define y 1)
+(define def define)
+(define h (lambda () y))
+(define m (lambda () (def y 2) (h)))
+(m)
+; 1.0
+
+; a local define elsewhere doesn't undo the optimization of f
+(define inc (lambda (x) (+ x 1)))
+(define f (lambda (n) (inc (* 2 3))))
+(define w (lambda () (define inc 5) inc))
+(w)
+; 5.0
+(f 0)
+; 7.0
+
+; a call that can't be resolved might be a define, so nothing is folded
+(define u (lambda (d) (d + -) (+ 1 2)))
+(u define)
+; -1.0
+(define t (lambda () (later + -) (+ 1 2)))
+(define later define)
+(t)
+; -1.0
+
+; a name defined locally further down isn't bound yet, so an inlined
+; call must not drop the error
+(define k (lambda (x) 1))
+(define v (lambda () (k z) (define z 1)))
+(v)
+; error: not defined: z